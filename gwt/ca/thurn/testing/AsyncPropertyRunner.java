@@ -0,0 +1,179 @@
+package ca.thurn.testing;
+
+import java.util.List;
+import java.util.Random;
+
+import ca.thurn.testing.SharedTestCase.AsyncBlock;
+import ca.thurn.testing.SharedTestCase.BlockListener;
+
+import com.google.gwt.user.client.Timer;
+
+/**
+ * Runs the cases of an async property one after another without blocking, since Javascript
+ * can't, by starting each case from the callback of the one before. A failing input is then
+ * shrunk the same way. Cases which complete synchronously are run in a loop rather than from
+ * nested callbacks, so that long runs don't overflow the stack. The outcome is reported by
+ * finishing or failing the given result block.
+ */
+final class AsyncPropertyRunner<T> {
+
+  private static final int MAX_SIZE = 100;
+  private static final int MAX_SHRINK_STEPS = 1000;
+
+  private final SharedTestCase testCase;
+  private final long seed;
+  private final Generator<T> generator;
+  private final AsyncProperty<T> property;
+  private final int numCases;
+  private final int timeoutMillis;
+  private final int shrinkTimeoutMillis;
+  private final AsyncBlock result;
+
+  private int caseNumber = 0;
+  private boolean shrinking = false;
+  private boolean originalTimedOut;
+  private T originalValue;
+  private T minimalValue;
+  private Throwable minimalError;
+  private List<T> candidates;
+  private int candidateIndex;
+  private int shrinkSteps = 0;
+
+  /**
+   * One check of the property against one input.
+   */
+  private class Check implements BlockListener {
+    final T value;
+    Throwable error;
+    boolean timedOut = false;
+    private boolean done = false;
+    private boolean waiting = false;
+    private Timer timer;
+
+    Check(T value) {
+      this.value = value;
+    }
+
+    /**
+     * @return True if the check completed synchronously. Otherwise it resumes the runner from
+     *     its callback.
+     */
+    boolean start(int timeoutMillis) {
+      final AsyncBlock block = testCase.new AsyncBlock("Property case", 1, this);
+      try {
+        property.check(value, block);
+      } catch (Throwable t) {
+        block.fail(t);
+      }
+      if (done) {
+        return true;
+      }
+      waiting = true;
+      timer = new Timer() {
+        @Override
+        public void run() {
+          timedOut = true;
+          block.fail(new RuntimeException(
+              "Timed out waiting for call to finished() with input " + value));
+        }
+      };
+      timer.schedule(timeoutMillis);
+      testCase.extendTestTimeout(timeoutMillis + 1000);
+      return false;
+    }
+
+    @Override
+    public void onDone(AsyncBlock block) {
+      if (done) {
+        return;
+      }
+      done = true;
+      error = block.getFailure();
+      if (timer != null) {
+        timer.cancel();
+      }
+      if (waiting) {
+        handle(this);
+        advance();
+      }
+    }
+  }
+
+  AsyncPropertyRunner(SharedTestCase testCase, long seed, Generator<T> generator,
+      AsyncProperty<T> property, int numCases, int timeoutMillis, int shrinkTimeoutMillis,
+      AsyncBlock result) {
+    this.testCase = testCase;
+    this.seed = seed;
+    this.generator = generator;
+    this.property = property;
+    this.numCases = numCases;
+    this.timeoutMillis = timeoutMillis;
+    this.shrinkTimeoutMillis = shrinkTimeoutMillis;
+    this.result = result;
+  }
+
+  void run() {
+    advance();
+  }
+
+  /**
+   * Starts checks until one has to wait for a callback, or until the run is over.
+   */
+  private void advance() {
+    while (true) {
+      T value;
+      if (!shrinking) {
+        if (caseNumber >= numCases) {
+          result.finished();
+          return;
+        }
+        try {
+          value = generator.generate(randomForCase(caseNumber), caseNumber % (MAX_SIZE + 1));
+        } catch (Throwable t) {
+          result.fail(new RuntimeException("Generator failed on case " + caseNumber + " of "
+              + numCases + " (seed " + seed + ")", t));
+          return;
+        }
+      } else {
+        if (candidateIndex >= candidates.size() || shrinkSteps >= MAX_SHRINK_STEPS) {
+          result.fail(new RuntimeException("Property failed on case " + caseNumber + " of "
+              + numCases + " (seed " + seed + "). Minimal input: " + minimalValue
+              + ", original input: " + originalValue, minimalError));
+          return;
+        }
+        value = candidates.get(candidateIndex++);
+        shrinkSteps++;
+      }
+      Check check = new Check(value);
+      if (!check.start(shrinking && originalTimedOut ? shrinkTimeoutMillis : timeoutMillis)) {
+        return;
+      }
+      handle(check);
+    }
+  }
+
+  private void handle(Check check) {
+    if (check.error == null) {
+      if (!shrinking) {
+        caseNumber++;
+      }
+      return;
+    }
+    if (!shrinking) {
+      shrinking = true;
+      originalValue = check.value;
+      originalTimedOut = check.timedOut;
+    } else if (check.timedOut && !originalTimedOut) {
+      // Might have passed given longer, so it says nothing about the failure being shrunk.
+      return;
+    }
+    minimalValue = check.value;
+    minimalError = check.error;
+    candidates = generator.shrink(minimalValue);
+    candidateIndex = 0;
+  }
+
+  private Random randomForCase(int caseNumber) {
+    return new Random(seed ^ (caseNumber * 0x9E3779B97F4A7C15L));
+  }
+}
@@ -0,0 +1,25 @@
+package ca.thurn.testing;
+
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Produces random inputs for SharedTestCase.checkProperty(), and simpler variants of an input
+ * which failed so that it can be reduced to a minimal failing case.
+ */
+public interface Generator<T> {
+
+  /**
+   * @param random The source of randomness. It is seeded per case, so using nothing else keeps
+   *     failures reproducible.
+   * @param size A hint, between 0 and 100, for how large the value should be. Early cases are
+   *     small and later ones larger.
+   */
+  T generate(Random random, int size);
+
+  /**
+   * Returns values which are simpler than the given one, most aggressive first, or an empty list
+   * if it can't be simplified any further.
+   */
+  List<T> shrink(T value);
+}
@@ -0,0 +1,280 @@
+package ca.thurn.testing;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+/**
+ * Generators for common types of input to SharedTestCase.checkProperty().
+ */
+public final class Generators {
+
+  private Generators() {
+  }
+
+  /**
+   * Integers from the whole range, biased towards small values and edge cases.
+   */
+  public static Generator<Integer> integers() {
+    return new Generator<Integer>() {
+      @Override
+      public Integer generate(Random random, int size) {
+        switch (random.nextInt(4)) {
+          case 0:
+            return random.nextInt(2 * size + 1) - size;
+          case 1:
+            int[] edges = {0, 1, -1, Integer.MIN_VALUE, Integer.MAX_VALUE};
+            return edges[random.nextInt(edges.length)];
+          default:
+            return random.nextInt();
+        }
+      }
+
+      @Override
+      public List<Integer> shrink(Integer value) {
+        return toIntegers(shrinkToward(0, value));
+      }
+    };
+  }
+
+  /**
+   * Integers between min and max, inclusive.
+   */
+  public static Generator<Integer> integers(final int min, final int max) {
+    if (min > max) {
+      throw new IllegalArgumentException("min " + min + " is greater than max " + max);
+    }
+    return new Generator<Integer>() {
+      @Override
+      public Integer generate(Random random, int size) {
+        long range = (long) max - min + 1;
+        return (int) (min + (random.nextLong() >>> 1) % range);
+      }
+
+      @Override
+      public List<Integer> shrink(Integer value) {
+        return toIntegers(shrinkToward(Math.max(min, Math.min(max, 0)), value));
+      }
+    };
+  }
+
+  /**
+   * Longs from the whole range, biased towards small values and edge cases.
+   */
+  public static Generator<Long> longs() {
+    return new Generator<Long>() {
+      @Override
+      public Long generate(Random random, int size) {
+        switch (random.nextInt(4)) {
+          case 0:
+            return (long) random.nextInt(2 * size + 1) - size;
+          case 1:
+            long[] edges = {0, 1, -1, Long.MIN_VALUE, Long.MAX_VALUE};
+            return edges[random.nextInt(edges.length)];
+          default:
+            return random.nextLong();
+        }
+      }
+
+      @Override
+      public List<Long> shrink(Long value) {
+        return shrinkToward(0, value);
+      }
+    };
+  }
+
+  /**
+   * Doubles of all magnitudes, including zero, NaN and the infinities.
+   */
+  public static Generator<Double> doubles() {
+    return new Generator<Double>() {
+      @Override
+      public Double generate(Random random, int size) {
+        switch (random.nextInt(4)) {
+          case 0:
+            return (random.nextDouble() * 2 - 1) * size;
+          case 1:
+            double[] edges = {0.0, -0.0, 1.0, -1.0, Double.MIN_VALUE, Double.MAX_VALUE,
+                Double.NaN, Double.POSITIVE_INFINITY, Double.NEGATIVE_INFINITY};
+            return edges[random.nextInt(edges.length)];
+          default:
+            return (random.nextDouble() * 2 - 1) * Math.pow(10, random.nextInt(20));
+        }
+      }
+
+      @Override
+      public List<Double> shrink(Double value) {
+        List<Double> candidates = new ArrayList<Double>();
+        if (value == 0.0) {
+          return candidates;
+        }
+        candidates.add(0.0);
+        if (Double.isNaN(value) || Double.isInfinite(value)) {
+          return candidates;
+        }
+        if (value != Math.rint(value)) {
+          candidates.add(Math.rint(value));
+        }
+        if (Math.abs(value) >= 2) {
+          candidates.add(Math.rint(value / 2));
+        }
+        return candidates;
+      }
+    };
+  }
+
+  public static Generator<Boolean> booleans() {
+    return new Generator<Boolean>() {
+      @Override
+      public Boolean generate(Random random, int size) {
+        return random.nextBoolean();
+      }
+
+      @Override
+      public List<Boolean> shrink(Boolean value) {
+        if (value) {
+          return Collections.singletonList(false);
+        }
+        return Collections.emptyList();
+      }
+    };
+  }
+
+  /**
+   * Strings of up to size characters, mostly printable ASCII.
+   */
+  public static Generator<String> strings() {
+    return new Generator<String>() {
+      @Override
+      public String generate(Random random, int size) {
+        int length = random.nextInt(size + 1);
+        StringBuilder result = new StringBuilder(length);
+        for (int i = 0; i < length; ++i) {
+          if (random.nextInt(4) == 0) {
+            result.append((char) (1 + random.nextInt(0xD7FF)));
+          } else {
+            result.append((char) (' ' + random.nextInt('~' - ' ' + 1)));
+          }
+        }
+        return result.toString();
+      }
+
+      @Override
+      public List<String> shrink(String value) {
+        List<String> candidates = new ArrayList<String>();
+        if (value.length() == 0) {
+          return candidates;
+        }
+        candidates.add("");
+        if (value.length() > 1) {
+          candidates.add(value.substring(0, value.length() / 2));
+          candidates.add(value.substring(value.length() / 2));
+        }
+        for (int i = 0; i < value.length(); ++i) {
+          candidates.add(value.substring(0, i) + value.substring(i + 1));
+        }
+        for (int i = 0; i < value.length(); ++i) {
+          if (value.charAt(i) != 'a') {
+            candidates.add(value.substring(0, i) + 'a' + value.substring(i + 1));
+            break;
+          }
+        }
+        return candidates;
+      }
+    };
+  }
+
+  /**
+   * Lists of up to size elements.
+   */
+  public static <T> Generator<List<T>> lists(final Generator<T> elements) {
+    return new Generator<List<T>>() {
+      @Override
+      public List<T> generate(Random random, int size) {
+        int length = random.nextInt(size + 1);
+        List<T> result = new ArrayList<T>(length);
+        for (int i = 0; i < length; ++i) {
+          result.add(elements.generate(random, size));
+        }
+        return result;
+      }
+
+      @Override
+      public List<List<T>> shrink(List<T> value) {
+        List<List<T>> candidates = new ArrayList<List<T>>();
+        if (value.isEmpty()) {
+          return candidates;
+        }
+        candidates.add(new ArrayList<T>());
+        if (value.size() > 1) {
+          candidates.add(new ArrayList<T>(value.subList(0, value.size() / 2)));
+          candidates.add(new ArrayList<T>(value.subList(value.size() / 2, value.size())));
+        }
+        for (int i = 0; i < value.size(); ++i) {
+          List<T> candidate = new ArrayList<T>(value);
+          candidate.remove(i);
+          candidates.add(candidate);
+        }
+        for (int i = 0; i < value.size(); ++i) {
+          for (T element : elements.shrink(value.get(i))) {
+            List<T> candidate = new ArrayList<T>(value);
+            candidate.set(i, element);
+            candidates.add(candidate);
+          }
+        }
+        return candidates;
+      }
+    };
+  }
+
+  /**
+   * Sets of up to size elements.
+   */
+  public static <T> Generator<Set<T>> sets(Generator<T> elements) {
+    final Generator<List<T>> lists = lists(elements);
+    return new Generator<Set<T>>() {
+      @Override
+      public Set<T> generate(Random random, int size) {
+        return new LinkedHashSet<T>(lists.generate(random, size));
+      }
+
+      @Override
+      public List<Set<T>> shrink(Set<T> value) {
+        List<Set<T>> candidates = new ArrayList<Set<T>>();
+        for (List<T> list : lists.shrink(new ArrayList<T>(value))) {
+          Set<T> candidate = new LinkedHashSet<T>(list);
+          if (!candidate.equals(value)) {
+            candidates.add(candidate);
+          }
+        }
+        return candidates;
+      }
+    };
+  }
+
+  /**
+   * Values between value and target, closest to the target first.
+   */
+  static List<Long> shrinkToward(long target, long value) {
+    List<Long> candidates = new ArrayList<Long>();
+    if (value == target) {
+      return candidates;
+    }
+    candidates.add(target);
+    for (long delta = (value - target) / 2; delta != 0; delta /= 2) {
+      candidates.add(value - delta);
+    }
+    return candidates;
+  }
+
+  private static List<Integer> toIntegers(List<Long> values) {
+    List<Integer> result = new ArrayList<Integer>(values.size());
+    for (Long value : values) {
+      result.add(value.intValue());
+    }
+    return result;
+  }
+}
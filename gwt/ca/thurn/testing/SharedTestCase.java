@@ -2,8 +2,11 @@ package ca.thurn.testing;
 
 import java.util.Iterator;
 import java.util.Map;
+import java.util.Set;
 
 import com.google.gwt.core.client.Callback;
+import com.google.gwt.core.client.Duration;
+import com.google.gwt.core.client.GWT;
 import com.google.gwt.core.client.ScriptInjector;
 import com.google.gwt.junit.client.GWTTestCase;
 import com.google.gwt.user.client.Timer;
@@ -20,7 +23,14 @@ public abstract class SharedTestCase extends GWTTestCase {
 
   boolean finished = false;
   int numFinishes = 0;
+  int pendingBlocks = 0;
   boolean didSetUpTestCase = false;
+  double setUpStartMillis = 0;
+  double setUpEndMillis = 0;
+  double asyncStartMillis = -1;
+
+  /** Marks the lines written when timing reports are enabled. */
+  static final String TIMING_MARKER = "[SharedTestCase timing]";
 
   public static enum TestMode {
     JAVA,
@@ -97,12 +107,209 @@ public abstract class SharedTestCase extends GWTTestCase {
       return value++;
     }
   }
+  
+  public static class LongReference {
+    private long value;
+    
+    public LongReference(long value) {
+      this.value = value;
+    }
+    
+    public void set(long newValue) {
+      value = newValue;
+    }
+    
+    public long get() {
+      return value;
+    }
+    
+    public long getAndSet(long newValue) {
+      long tmp = value;
+      set(newValue);
+      return tmp;
+    }
+    
+    public long getAndIncrement() {
+      return value++;
+    }
+    
+    public long getAndAdd(long delta) {
+      long tmp = value;
+      value += delta;
+      return tmp;
+    }
+  }
+  
+  /**
+   * A counter for events reported from many threads at once. Javascript is single-threaded, so
+   * this is a plain counter here.
+   */
+  public static class CounterReference {
+    private long value;
+    
+    public CounterReference(long value) {
+      this.value = value;
+    }
+    
+    public void increment() {
+      value++;
+    }
+    
+    public void add(long delta) {
+      value += delta;
+    }
+    
+    public long get() {
+      return value;
+    }
+  }
+  
+  /**
+   * A histogram of latencies (or any other non-negative values). Recording only updates a few
+   * fields of a fixed-size array, though in Javascript each long operation still allocates.
+   * Values are kept in logarithmic buckets with 32 linear sub-buckets each, so reported
+   * percentiles are within about 3% of the true value.
+   */
+  public static class LatencyHistogramReference {
+    private static final int SUB_BUCKET_BITS = 5;
+    private static final int NUM_BUCKETS = (64 - SUB_BUCKET_BITS) << SUB_BUCKET_BITS;
+    private final long[] counts = new long[NUM_BUCKETS];
+    private long count = 0;
+    private long max = 0;
+    
+    public void record(long value) {
+      value = Math.max(0, value);
+      counts[bucketIndex(value)]++;
+      count++;
+      max = Math.max(max, value);
+    }
+    
+    public long getCount() {
+      return count;
+    }
+    
+    public long getMax() {
+      return max;
+    }
+    
+    /**
+     * @param percentile A percentile between 0 and 100.
+     * @return A value which at least the given percentage of recorded values are less than or
+     *     equal to, or 0 if nothing has been recorded.
+     */
+    public long getPercentile(double percentile) {
+      long target = (long) Math.ceil(percentile / 100.0 * count);
+      long seen = 0;
+      for (int i = 0; i < NUM_BUCKETS; ++i) {
+        seen += counts[i];
+        if (seen > 0 && seen >= target) {
+          return Math.min(highestValueInBucket(i), max);
+        }
+      }
+      return max;
+    }
+    
+    @Override
+    public String toString() {
+      return "count=" + getCount() + " p50=" + getPercentile(50) + " p90=" + getPercentile(90)
+          + " p99=" + getPercentile(99) + " max=" + getMax();
+    }
+    
+    static int bucketIndex(long value) {
+      int shift = Math.max(0, 63 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS);
+      return (shift << SUB_BUCKET_BITS) + (int) (value >>> shift);
+    }
+    
+    static long highestValueInBucket(int index) {
+      int shift = Math.max(0, (index >> SUB_BUCKET_BITS) - 1);
+      long subBucket = index - (shift << SUB_BUCKET_BITS);
+      return ((subBucket + 1) << shift) - 1;
+    }
+  }
+
+  /**
+   * Told when an async block created with it finishes or fails.
+   */
+  interface BlockListener {
+    void onDone(AsyncBlock block);
+  }
+  
+  /**
+   * One of possibly several async blocks outstanding in the same test. See
+   * beginAsyncTestBlock(String, int).
+   */
+  public class AsyncBlock {
+    private final String name;
+    private final BlockListener listener;
+    private int numFinishes;
+    private Throwable failure;
+    
+    AsyncBlock(String name, int numFinishesExpected) {
+      this(name, numFinishesExpected, null);
+    }
+    
+    /**
+     * @param listener Told when the block finishes or fails, instead of the test. Blocks with a
+     *     listener don't keep the test running.
+     */
+    AsyncBlock(String name, int numFinishesExpected, BlockListener listener) {
+      this.name = name;
+      this.numFinishes = numFinishesExpected;
+      this.listener = listener;
+    }
+    
+    public String getName() {
+      return name;
+    }
+    
+    public void finished() {
+      numFinishes--;
+      if (numFinishes == 0 && failure == null) {
+        if (listener != null) {
+          listener.onDone(this);
+        } else {
+          blockFinished();
+        }
+      }
+    }
+    
+    /**
+     * Marks the block as failed. The test can't be waiting on it in Javascript, so unless the
+     * block was created internally with a listener, this fails the test by rethrowing the error
+     * from the calling callback. Only the first failure is kept.
+     */
+    public void fail(Throwable error) {
+      if (failure != null || isFinished()) {
+        return;
+      }
+      failure = error;
+      if (listener != null) {
+        listener.onDone(this);
+      } else {
+        rethrow(error);
+      }
+    }
+    
+    public Throwable getFailure() {
+      return failure;
+    }
+    
+    public boolean isFinished() {
+      return numFinishes <= 0;
+    }
+    
+    @Override
+    public String toString() {
+      return name;
+    }
+  }
 
   public String getJavascriptModuleName() {
     throw new RuntimeException("No Javascript module name supplied");
   }
   
   public final void gwtSetUp() {
+    setUpStartMillis = Duration.currentTimeMillis();
     beginAsyncTestBlock();
     final Runnable runFinished = new OneTimeRunnable(new Runnable() {
       @Override
@@ -123,12 +330,48 @@ public abstract class SharedTestCase extends GWTTestCase {
       sharedSetUp(runFinished);
     }
     endAsyncTestBlock();
+    setUpEndMillis = Duration.currentTimeMillis();
   }
   
   public final void gwtTearDown() {
+    if (isTimingReportEnabled() && GWT.isScript()) {
+      double now = Duration.currentTimeMillis();
+      double asyncMillis = asyncStartMillis < 0 ? 0 : now - asyncStartMillis;
+      log(TIMING_MARKER + "\t" + getTestMode() + "\t" + getClass().getName() + "." + getName()
+          + "\t" + toMillis(setUpEndMillis - setUpStartMillis) + "\t"
+          + toMillis(now - setUpEndMillis - asyncMillis) + "\t" + toMillis(asyncMillis));
+    }
     sharedTearDown();
   }
   
+  /**
+   * If true, a line with the time taken by setUp, the test body and waiting on async blocks is
+   * written to the browser console after each test. The test can't block in Javascript, so the
+   * async time is measured from the first call to endAsyncTestBlock() or awaitAll() in the test
+   * body, where the JVM would start blocking, until the test ends. The body time is whatever
+   * comes before that. Lines are only written in production
+   * mode, since in development mode the test runs as Java bytecode rather than Javascript.
+   */
+  public boolean isTimingReportEnabled() {
+    return false;
+  }
+  
+  private static native void log(String message) /*-{
+    if ($wnd.console && $wnd.console.log) {
+      $wnd.console.log(message);
+    }
+  }-*/;
+  
+  private static String toMillis(double millis) {
+    return String.valueOf(Math.round(millis * 1000) / 1000.0);
+  }
+  
+  private void markAsyncStart() {
+    if (setUpEndMillis >= setUpStartMillis && asyncStartMillis < 0) {
+      asyncStartMillis = Duration.currentTimeMillis();
+    }
+  }
+  
   public void sharedSetUpTestCase(Runnable done) {
     done.run();
   }
@@ -167,6 +410,38 @@ public abstract class SharedTestCase extends GWTTestCase {
   }
 
   public void endAsyncTestBlock() {
+    markAsyncStart();
+  }
+
+  /**
+   * Starts a named async block which can be outstanding at the same time as other blocks. Call
+   * finished() on the returned block, rather than on the test, when each callback completes.
+   */
+  public synchronized AsyncBlock beginAsyncTestBlock(String name, int numFinishesExpected) {
+    if (numFinishesExpected > 0) {
+      pendingBlocks++;
+      delayTestFinish(10000);
+    }
+    return new AsyncBlock(name, numFinishesExpected);
+  }
+
+  /**
+   * The test can't block in Javascript, so instead it is kept running until every outstanding
+   * async block has finished.
+   */
+  public void awaitAll(AsyncBlock... blocks) {
+    markAsyncStart();
+  }
+
+  /**
+   * Stack sampling of stalled async blocks is only supported on the JVM, so this is ignored.
+   */
+  public long getStallThresholdMillis() {
+    return 2000;
+  }
+
+  public long getStallSampleIntervalMillis() {
+    return 20;
   }
 
   public TestMode getTestMode() {
@@ -178,7 +453,31 @@ public abstract class SharedTestCase extends GWTTestCase {
    */
   public synchronized void finished() {
     numFinishes--;
-    if (numFinishes <= 0) {
+    if (numFinishes <= 0 && pendingBlocks == 0) {
+      finishTest();
+    }
+  }
+
+  /**
+   * Gives the test another timeoutMillis to finish, for code in this package which can't call
+   * delayTestFinish() directly.
+   */
+  void extendTestTimeout(int timeoutMillis) {
+    delayTestFinish(timeoutMillis);
+  }
+
+  static void rethrow(Throwable error) {
+    if (error instanceof RuntimeException) {
+      throw (RuntimeException) error;
+    } else if (error instanceof Error) {
+      throw (Error) error;
+    }
+    throw new RuntimeException(error);
+  }
+
+  synchronized void blockFinished() {
+    pendingBlocks--;
+    if (numFinishes <= 0 && pendingBlocks == 0) {
       finishTest();
     }
   }
@@ -196,12 +495,80 @@ public abstract class SharedTestCase extends GWTTestCase {
     return com.google.gwt.user.client.Random.nextInt();
   }
 
+  public <T> void checkProperty(Generator<T> generator, Property<T> property) {
+    checkProperty(100, generator, property);
+  }
+
+  public <T> void checkProperty(int numCases, Generator<T> generator, Property<T> property) {
+    checkProperty(numCases, randomInteger(), generator, property);
+  }
+
+  /**
+   * Checks that a property holds for numCases inputs from the given generator, one after
+   * another. If a case fails, its input is shrunk to a minimal failing one, and the failure
+   * reports both inputs along with the seed, which can be passed back in to reproduce it.
+   */
+  public <T> void checkProperty(int numCases, long seed, Generator<T> generator,
+      Property<T> property) {
+    new PropertyRunner<T>(seed, generator, property).run(numCases);
+  }
+
+  public <T> void checkAsyncProperty(int numCases, Generator<T> generator,
+      AsyncProperty<T> property) {
+    checkAsyncProperty(numCases, randomInteger(), generator, property);
+  }
+
+  /**
+   * Like checkProperty(), but each case is only complete once it calls finished() on the block
+   * it is given, and fails as soon as it calls fail() on it or once it times out. The test can't
+   * block in Javascript, so this returns straight away. Each case is then started from the
+   * callback of the one before, and the test is kept running until all of them are done.
+   */
+  public <T> void checkAsyncProperty(int numCases, long seed, Generator<T> generator,
+      AsyncProperty<T> property) {
+    AsyncBlock result = beginAsyncTestBlock("Property", 1);
+    new AsyncPropertyRunner<T>(this, seed, generator, property, numCases,
+        (int) getAsyncPropertyTimeoutMillis(), (int) getAsyncPropertyShrinkTimeoutMillis(),
+        result).run();
+  }
+
+  /**
+   * How long each case of checkAsyncProperty() may wait for finished() before it fails.
+   */
+  public long getAsyncPropertyTimeoutMillis() {
+    return 10000;
+  }
+
+  /**
+   * How long each input tried while shrinking a case of checkAsyncProperty() which timed out may
+   * wait for finished(). This is short, since each such input which still fails does so by timing
+   * out. Inputs tried while shrinking a case which failed some other way get the full timeout,
+   * and don't count as failing if they time out.
+   */
+  public long getAsyncPropertyShrinkTimeoutMillis() {
+    return 500;
+  }
+
   public void assertDeepEquals(Object o1, Object o2) {
     assertDeepEquals("(no message)", o1, o2);
   }
   
+  /**
+   * Compares Sets without regard to order, other Iterables in iteration order, Maps by key,
+   * and arrays element by element, recursing into the contents of each. A Set never equals
+   * anything but another Set.
+   */
   public void assertDeepEquals(String msg, Object o1, Object o2) {
-    if (o1 instanceof Iterable && o2 instanceof Iterable) {
+    if (DeepEquality.equal(o1, o2)) {
+      return;
+    }
+    // The values differ, so walk them again to report the first difference.
+    if (o1 instanceof Set && o2 instanceof Set) {
+      assertEquals("Set sizes differ", ((Set<?>) o1).size(), ((Set<?>) o2).size());
+      assertMultisetEquals(msg, (Set<?>) o1, (Set<?>) o2);
+    } else if (o1 instanceof Set || o2 instanceof Set) {
+      fail(msg + ": a Set can only equal another Set");
+    } else if (o1 instanceof Iterable && o2 instanceof Iterable) {
       @SuppressWarnings("unchecked")
       Iterator<Object> ite1 = ((Iterable<Object>) o1).iterator();
       @SuppressWarnings("unchecked")
@@ -217,12 +584,44 @@ public abstract class SharedTestCase extends GWTTestCase {
       Map<Object, Object> map2 = (Map<Object, Object>) o2;
       assertEquals("Map sizes differ", map1.size(), map2.size());
       for (Map.Entry<Object, Object> entry : map1.entrySet()) {
-        assertTrue(map2.containsKey(entry.getKey()));
-        assertDeepEquals(msg, entry.getValue(), map2.get(entry.getKey()));
+        Object value2 = map2.get(entry.getKey());
+        if (value2 == null && !map2.containsKey(entry.getKey())) {
+          fail(msg + ": missing map key " + entry.getKey());
+        }
+        assertDeepEquals(msg, entry.getValue(), value2);
+      }
+    } else if (o1 instanceof Object[] && o2 instanceof Object[]) {
+      Object[] array1 = (Object[]) o1;
+      Object[] array2 = (Object[]) o2;
+      assertEquals("Array lengths differ", array1.length, array2.length);
+      for (int i = 0; i < array1.length; ++i) {
+        assertDeepEquals(msg, array1[i], array2[i]);
+      }
+    } else if (Mismatch.isPrimitiveArray(o1) && Mismatch.isPrimitiveArray(o2)) {
+      assertEquals("Array types differ", o1.getClass(), o2.getClass());
+      int index = Mismatch.arrays(o1, o2);
+      if (index != -1) {
+        fail(msg + ": arrays differ at index " + index);
       }
     } else {
       assertEquals(msg, o1, o2);
     }
+    fail(msg + ": " + o1 + " does not equal " + o2);
+  }
+
+  public void assertMultisetEquals(Iterable<?> c1, Iterable<?> c2) {
+    assertMultisetEquals("(no message)", c1, c2);
+  }
+
+  /**
+   * Asserts that two collections contain deeply equal elements the same number of times, in any
+   * order. Elements are matched up by hashing, so this runs in linear time.
+   */
+  public void assertMultisetEquals(String msg, Iterable<?> c1, Iterable<?> c2) {
+    Object unmatched = DeepEquality.unmatched(c1, c2);
+    if (unmatched != DeepEquality.NONE) {
+      fail(msg + ": no matching element for " + unmatched);
+    }
   }
   
 }
@@ -0,0 +1,181 @@
+package ca.thurn.testing;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * The structural equality used by assertDeepEquals(), in predicate form, along with a fingerprint
+ * hash that is consistent with it. Fingerprints let unordered collections be matched up in linear
+ * time instead of comparing every element against every other.
+ */
+final class DeepEquality {
+
+  /** Returned by unmatched() when every element found a partner. */
+  static final Object NONE = new Object();
+
+  private DeepEquality() {
+  }
+
+  /**
+   * Sets only equal other Sets and are compared without regard to order. Other Iterables are
+   * compared in iteration order, Map values and array elements are compared recursively, and
+   * everything else falls back to equals().
+   */
+  static boolean equal(Object o1, Object o2) {
+    if (o1 == o2) {
+      return true;
+    } else if (o1 == null || o2 == null) {
+      return false;
+    } else if (o1 instanceof Set || o2 instanceof Set) {
+      return o1 instanceof Set && o2 instanceof Set
+          && ((Set<?>) o1).size() == ((Set<?>) o2).size()
+          && unmatched((Set<?>) o1, (Set<?>) o2) == NONE;
+    } else if (o1 instanceof Iterable && o2 instanceof Iterable) {
+      Iterator<?> ite1 = ((Iterable<?>) o1).iterator();
+      Iterator<?> ite2 = ((Iterable<?>) o2).iterator();
+      while (ite1.hasNext() && ite2.hasNext()) {
+        if (!equal(ite1.next(), ite2.next())) {
+          return false;
+        }
+      }
+      return !(ite1.hasNext() || ite2.hasNext());
+    } else if (o1 instanceof Map && o2 instanceof Map) {
+      Map<?, ?> map1 = (Map<?, ?>) o1;
+      Map<?, ?> map2 = (Map<?, ?>) o2;
+      if (map1.size() != map2.size()) {
+        return false;
+      }
+      for (Map.Entry<?, ?> entry : map1.entrySet()) {
+        Object value2 = map2.get(entry.getKey());
+        if (value2 == null && !map2.containsKey(entry.getKey())) {
+          return false;
+        }
+        if (!equal(entry.getValue(), value2)) {
+          return false;
+        }
+      }
+      return true;
+    } else if (o1 instanceof Object[] && o2 instanceof Object[]) {
+      Object[] array1 = (Object[]) o1;
+      Object[] array2 = (Object[]) o2;
+      if (array1.length != array2.length) {
+        return false;
+      }
+      for (int i = 0; i < array1.length; ++i) {
+        if (!equal(array1[i], array2[i])) {
+          return false;
+        }
+      }
+      return true;
+    } else if (Mismatch.isPrimitiveArray(o1) && Mismatch.isPrimitiveArray(o2)) {
+      return o1.getClass() == o2.getClass() && Mismatch.arrays(o1, o2) == -1;
+    }
+    return o1.equals(o2);
+  }
+
+  /**
+   * A hash code for which equal(o1, o2) implies fingerprint(o1) == fingerprint(o2).
+   */
+  static int fingerprint(Object o) {
+    if (o == null) {
+      return 0;
+    } else if (o instanceof Set) {
+      int hash = 0;
+      for (Object element : (Set<?>) o) {
+        hash += fingerprint(element);
+      }
+      return hash;
+    } else if (o instanceof Iterable) {
+      int hash = 1;
+      for (Object element : (Iterable<?>) o) {
+        hash = 31 * hash + fingerprint(element);
+      }
+      return hash;
+    } else if (o instanceof Map) {
+      int hash = 0;
+      for (Map.Entry<?, ?> entry : ((Map<?, ?>) o).entrySet()) {
+        Object key = entry.getKey();
+        hash += (key == null ? 0 : key.hashCode()) ^ fingerprint(entry.getValue());
+      }
+      return hash;
+    } else if (o instanceof Object[]) {
+      int hash = 1;
+      for (Object element : (Object[]) o) {
+        hash = 31 * hash + fingerprint(element);
+      }
+      return hash;
+    } else if (o instanceof int[]) {
+      return Arrays.hashCode((int[]) o);
+    } else if (o instanceof long[]) {
+      return Arrays.hashCode((long[]) o);
+    } else if (o instanceof double[]) {
+      return Arrays.hashCode((double[]) o);
+    } else if (o instanceof float[]) {
+      return Arrays.hashCode((float[]) o);
+    } else if (o instanceof byte[]) {
+      return Arrays.hashCode((byte[]) o);
+    } else if (o instanceof short[]) {
+      return Arrays.hashCode((short[]) o);
+    } else if (o instanceof char[]) {
+      return Arrays.hashCode((char[]) o);
+    } else if (o instanceof boolean[]) {
+      return Arrays.hashCode((boolean[]) o);
+    }
+    return o.hashCode();
+  }
+
+  /**
+   * Pairs up the elements of two collections treated as multisets, ignoring order. Elements of
+   * the second collection are bucketed by fingerprint, so each element of the first is only
+   * compared against the few candidates that could possibly equal it.
+   *
+   * @return An element of either collection without a partner in the other, or NONE if the two
+   *     collections contain the same elements the same number of times.
+   */
+  static Object unmatched(Iterable<?> c1, Iterable<?> c2) {
+    Map<Integer, List<Object>> buckets = new HashMap<Integer, List<Object>>();
+    int remaining = 0;
+    for (Object element : c2) {
+      Integer key = fingerprint(element);
+      List<Object> bucket = buckets.get(key);
+      if (bucket == null) {
+        bucket = new ArrayList<Object>(1);
+        buckets.put(key, bucket);
+      }
+      bucket.add(element);
+      remaining++;
+    }
+    for (Object element : c1) {
+      List<Object> bucket = buckets.get(fingerprint(element));
+      if (bucket == null || !removeMatch(bucket, element)) {
+        return element;
+      }
+      remaining--;
+    }
+    if (remaining > 0) {
+      for (List<Object> bucket : buckets.values()) {
+        if (!bucket.isEmpty()) {
+          return bucket.get(0);
+        }
+      }
+    }
+    return NONE;
+  }
+
+  private static boolean removeMatch(List<Object> bucket, Object element) {
+    for (int i = 0; i < bucket.size(); ++i) {
+      if (equal(element, bucket.get(i))) {
+        int last = bucket.size() - 1;
+        bucket.set(i, bucket.get(last));
+        bucket.remove(last);
+        return true;
+      }
+    }
+    return false;
+  }
+}
@@ -0,0 +1,228 @@
+package ca.thurn.testing;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+/**
+ * Locates the first position at which two blocks of primitive data differ. Every method returns
+ * -1 if the inputs are equal, and the length of the shorter input if one is a prefix of the other.
+ * The bulk comparison is done first, so the element-by-element scan only runs on failure.
+ */
+final class Mismatch {
+
+  /** Files are read and compared this many bytes at a time. */
+  private static final int FILE_BUFFER_SIZE = 1024 * 1024;
+
+  private Mismatch() {
+  }
+
+  static boolean isPrimitiveArray(Object o) {
+    return o instanceof int[] || o instanceof long[] || o instanceof double[]
+        || o instanceof float[] || o instanceof byte[] || o instanceof short[]
+        || o instanceof char[] || o instanceof boolean[];
+  }
+
+  /**
+   * Both arguments must be primitive arrays of the same component type.
+   */
+  static int arrays(Object a1, Object a2) {
+    if (a1 instanceof int[]) {
+      return of((int[]) a1, (int[]) a2);
+    } else if (a1 instanceof long[]) {
+      return of((long[]) a1, (long[]) a2);
+    } else if (a1 instanceof double[]) {
+      return of((double[]) a1, (double[]) a2);
+    } else if (a1 instanceof float[]) {
+      return of((float[]) a1, (float[]) a2);
+    } else if (a1 instanceof byte[]) {
+      return of((byte[]) a1, (byte[]) a2);
+    } else if (a1 instanceof short[]) {
+      return of((short[]) a1, (short[]) a2);
+    } else if (a1 instanceof char[]) {
+      return of((char[]) a1, (char[]) a2);
+    } else if (a1 instanceof boolean[]) {
+      return of((boolean[]) a1, (boolean[]) a2);
+    }
+    throw new IllegalArgumentException("Not a primitive array: " + a1);
+  }
+
+  /**
+   * Compares the remaining bytes of the two buffers without copying them or changing their
+   * positions.
+   */
+  static int of(ByteBuffer b1, ByteBuffer b2) {
+    if (b1.equals(b2)) {
+      return -1;
+    }
+    int length = Math.min(b1.remaining(), b2.remaining());
+    int position1 = b1.position();
+    int position2 = b2.position();
+    for (int i = 0; i < length; ++i) {
+      if (b1.get(position1 + i) != b2.get(position2 + i)) {
+        return i;
+      }
+    }
+    return length;
+  }
+
+  /**
+   * Compares two files by streaming them through a fixed pair of direct buffers, so their
+   * contents are never copied onto the heap and no mappings outlive the call.
+   */
+  static long of(File f1, File f2) throws IOException {
+    FileInputStream in1 = new FileInputStream(f1);
+    try {
+      FileInputStream in2 = new FileInputStream(f2);
+      try {
+        FileChannel channel1 = in1.getChannel();
+        FileChannel channel2 = in2.getChannel();
+        ByteBuffer buffer1 = ByteBuffer.allocateDirect(FILE_BUFFER_SIZE);
+        ByteBuffer buffer2 = ByteBuffer.allocateDirect(FILE_BUFFER_SIZE);
+        long offset = 0;
+        while (true) {
+          int read1 = fill(channel1, buffer1);
+          int read2 = fill(channel2, buffer2);
+          int length = Math.min(read1, read2);
+          buffer1.flip();
+          buffer2.flip();
+          buffer1.limit(length);
+          buffer2.limit(length);
+          int index = of(buffer1, buffer2);
+          if (index != -1) {
+            return offset + index;
+          } else if (read1 != read2) {
+            return offset + length;
+          } else if (read1 < FILE_BUFFER_SIZE) {
+            return -1;
+          }
+          offset += length;
+          buffer1.clear();
+          buffer2.clear();
+        }
+      } finally {
+        in2.close();
+      }
+    } finally {
+      in1.close();
+    }
+  }
+
+  /**
+   * Reads until the buffer is full or the end of the channel is reached.
+   *
+   * @return The number of bytes read.
+   */
+  private static int fill(FileChannel channel, ByteBuffer buffer) throws IOException {
+    while (buffer.hasRemaining() && channel.read(buffer) != -1) {
+    }
+    return buffer.position();
+  }
+
+  static int of(int[] a1, int[] a2) {
+    if (Arrays.equals(a1, a2)) {
+      return -1;
+    }
+    int length = Math.min(a1.length, a2.length);
+    for (int i = 0; i < length; ++i) {
+      if (a1[i] != a2[i]) {
+        return i;
+      }
+    }
+    return length;
+  }
+
+  static int of(long[] a1, long[] a2) {
+    if (Arrays.equals(a1, a2)) {
+      return -1;
+    }
+    int length = Math.min(a1.length, a2.length);
+    for (int i = 0; i < length; ++i) {
+      if (a1[i] != a2[i]) {
+        return i;
+      }
+    }
+    return length;
+  }
+
+  static int of(byte[] a1, byte[] a2) {
+    if (Arrays.equals(a1, a2)) {
+      return -1;
+    }
+    int length = Math.min(a1.length, a2.length);
+    for (int i = 0; i < length; ++i) {
+      if (a1[i] != a2[i]) {
+        return i;
+      }
+    }
+    return length;
+  }
+
+  static int of(short[] a1, short[] a2) {
+    if (Arrays.equals(a1, a2)) {
+      return -1;
+    }
+    int length = Math.min(a1.length, a2.length);
+    for (int i = 0; i < length; ++i) {
+      if (a1[i] != a2[i]) {
+        return i;
+      }
+    }
+    return length;
+  }
+
+  static int of(char[] a1, char[] a2) {
+    if (Arrays.equals(a1, a2)) {
+      return -1;
+    }
+    int length = Math.min(a1.length, a2.length);
+    for (int i = 0; i < length; ++i) {
+      if (a1[i] != a2[i]) {
+        return i;
+      }
+    }
+    return length;
+  }
+
+  static int of(boolean[] a1, boolean[] a2) {
+    if (Arrays.equals(a1, a2)) {
+      return -1;
+    }
+    int length = Math.min(a1.length, a2.length);
+    for (int i = 0; i < length; ++i) {
+      if (a1[i] != a2[i]) {
+        return i;
+      }
+    }
+    return length;
+  }
+
+  static int of(double[] a1, double[] a2) {
+    if (Arrays.equals(a1, a2)) {
+      return -1;
+    }
+    int length = Math.min(a1.length, a2.length);
+    for (int i = 0; i < length; ++i) {
+      if (Double.compare(a1[i], a2[i]) != 0) {
+        return i;
+      }
+    }
+    return length;
+  }
+
+  static int of(float[] a1, float[] a2) {
+    if (Arrays.equals(a1, a2)) {
+      return -1;
+    }
+    int length = Math.min(a1.length, a2.length);
+    for (int i = 0; i < length; ++i) {
+      if (Float.compare(a1[i], a2[i]) != 0) {
+        return i;
+      }
+    }
+    return length;
+  }
+}
@@ -0,0 +1,161 @@
+package ca.thurn.testing;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import ca.thurn.testing.SharedTestCase.TestMode;
+
+/**
+ * Compares how long the same shared tests take under each TestMode. Run your tests once per mode
+ * with timing reports enabled (see SharedTestCase.isTimingReportEnabled()), capture their output,
+ * and pass the captured logs to this class. It prints a table with the setUp, body and async-wait
+ * times of each test under each mode, and flags tests whose body times differ between modes by
+ * more than a given factor. Body times exclude async waits, so the flag reflects the code under
+ * test rather than callback latency. Tests whose slowest body time is under a minimum are never
+ * flagged, since ratios between sub-millisecond times are mostly noise.
+ *
+ * Usage: java ca.thurn.testing.ModeComparisonReport [--threshold=3.0] [--min-millis=1.0] log...
+ */
+public class ModeComparisonReport {
+
+  static class Timing {
+    int runs = 0;
+    double setUpMillis = 0;
+    double bodyMillis = 0;
+    double asyncMillis = 0;
+
+    void add(double setUp, double body, double async) {
+      runs++;
+      setUpMillis += setUp;
+      bodyMillis += body;
+      asyncMillis += async;
+    }
+  }
+
+  private final Map<String, Map<TestMode, Timing>> timings =
+      new TreeMap<String, Map<TestMode, Timing>>();
+
+  /**
+   * Reads every timing line in the given log. Other lines are ignored, so the output of a whole
+   * test run can be passed in as is.
+   */
+  public void read(BufferedReader log) throws IOException {
+    String line;
+    while ((line = log.readLine()) != null) {
+      int start = line.indexOf(SharedTestCase.TIMING_MARKER);
+      if (start == -1) {
+        continue;
+      }
+      String[] fields =
+          line.substring(start + SharedTestCase.TIMING_MARKER.length()).trim().split("\t");
+      if (fields.length != 5) {
+        continue;
+      }
+      Map<TestMode, Timing> byMode = timings.get(fields[1]);
+      if (byMode == null) {
+        byMode = new EnumMap<TestMode, Timing>(TestMode.class);
+        timings.put(fields[1], byMode);
+      }
+      TestMode mode = TestMode.valueOf(fields[0]);
+      Timing timing = byMode.get(mode);
+      if (timing == null) {
+        timing = new Timing();
+        byMode.put(mode, timing);
+      }
+      timing.add(Double.parseDouble(fields[2]), Double.parseDouble(fields[3]),
+          Double.parseDouble(fields[4]));
+    }
+  }
+
+  /**
+   * Prints one row per test, with a setUp/body/async column for each mode that was seen and the
+   * ratio between the slowest and fastest body times. Rows whose ratio is at least the threshold,
+   * and whose slowest body time is at least minMillis, are marked with an asterisk.
+   */
+  public void print(PrintStream out, double threshold, double minMillis) {
+    List<TestMode> modes = new ArrayList<TestMode>();
+    for (TestMode mode : TestMode.values()) {
+      for (Map<TestMode, Timing> byMode : timings.values()) {
+        if (byMode.containsKey(mode)) {
+          modes.add(mode);
+          break;
+        }
+      }
+    }
+    int nameWidth = "Test".length();
+    for (String test : timings.keySet()) {
+      nameWidth = Math.max(nameWidth, test.length());
+    }
+    StringBuilder header = new StringBuilder(pad("Test", nameWidth));
+    for (TestMode mode : modes) {
+      header.append("  ").append(pad(mode + " setUp/body/async ms", 36));
+    }
+    out.println(header.append("  Ratio"));
+    for (Map.Entry<String, Map<TestMode, Timing>> entry : timings.entrySet()) {
+      StringBuilder row = new StringBuilder(pad(entry.getKey(), nameWidth));
+      double fastest = Double.MAX_VALUE;
+      double slowest = 0;
+      for (TestMode mode : modes) {
+        Timing timing = entry.getValue().get(mode);
+        if (timing == null) {
+          row.append("  ").append(pad("-", 36));
+          continue;
+        }
+        double body = timing.bodyMillis / timing.runs;
+        fastest = Math.min(fastest, body);
+        slowest = Math.max(slowest, body);
+        row.append("  ").append(pad(format(timing.setUpMillis / timing.runs) + " / "
+            + format(body) + " / " + format(timing.asyncMillis / timing.runs), 36));
+      }
+      if (entry.getValue().size() > 1) {
+        double ratio = slowest / Math.max(fastest, 0.001);
+        row.append("  ").append(format(ratio));
+        if (ratio >= threshold && slowest >= minMillis) {
+          row.append(" *");
+        }
+      }
+      out.println(row);
+    }
+  }
+
+  private static String format(double value) {
+    return String.valueOf(Math.round(value * 100) / 100.0);
+  }
+
+  private static String pad(String s, int width) {
+    StringBuilder result = new StringBuilder(s);
+    while (result.length() < width) {
+      result.append(' ');
+    }
+    return result.toString();
+  }
+
+  public static void main(String[] args) throws IOException {
+    double threshold = 3.0;
+    double minMillis = 1.0;
+    ModeComparisonReport report = new ModeComparisonReport();
+    for (String arg : args) {
+      if (arg.startsWith("--threshold=")) {
+        threshold = Double.parseDouble(arg.substring("--threshold=".length()));
+        continue;
+      } else if (arg.startsWith("--min-millis=")) {
+        minMillis = Double.parseDouble(arg.substring("--min-millis=".length()));
+        continue;
+      }
+      BufferedReader log = new BufferedReader(new FileReader(arg));
+      try {
+        report.read(log);
+      } finally {
+        log.close();
+      }
+    }
+    report.print(System.out, threshold, minMillis);
+  }
+}
@@ -0,0 +1,13 @@
+package ca.thurn.testing;
+
+/**
+ * A property which should hold for every generated input. See SharedTestCase.checkProperty().
+ */
+public interface Property<T> {
+
+  /**
+   * Checks the property for one input, failing via one of the SharedTestCase assertions (or any
+   * other exception) if it does not hold.
+   */
+  void check(T value);
+}
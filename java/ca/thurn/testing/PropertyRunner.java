@@ -0,0 +1,173 @@
+package ca.thurn.testing;
+
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Runs the cases of a property in parallel on a fixed pool of threads, then shrinks the first
+ * failing input it finds to a minimal one on the calling thread.
+ */
+final class PropertyRunner<T> {
+
+  private static final int MAX_SIZE = 100;
+  private static final int MAX_SHRINK_STEPS = 1000;
+
+  private final long seed;
+  private final Generator<T> generator;
+  private final Property<T> property;
+  private final Property<T> timeoutShrinkProperty;
+  private final AtomicReference<Failure> failure = new AtomicReference<Failure>();
+
+  /**
+   * Thrown by a property whose check gave up waiting for its result. While shrinking an input
+   * which failed some other way, candidates which throw this don't count as failing, since they
+   * might well have passed.
+   */
+  static final class CaseTimedOutException extends RuntimeException {
+    private static final long serialVersionUID = 1L;
+
+    CaseTimedOutException(String message) {
+      super(message);
+    }
+  }
+
+  private class Failure {
+    final int caseNumber;
+    final T value;
+    final Throwable error;
+    final boolean generatorFailed;
+
+    Failure(int caseNumber, T value, Throwable error, boolean generatorFailed) {
+      this.caseNumber = caseNumber;
+      this.value = value;
+      this.error = error;
+      this.generatorFailed = generatorFailed;
+    }
+  }
+
+  PropertyRunner(long seed, Generator<T> generator, Property<T> property) {
+    this(seed, generator, property, property);
+  }
+
+  /**
+   * @param timeoutShrinkProperty Checks the property while shrinking an input which failed with
+   *     a CaseTimedOutException. This can differ from the main check, for example to use a
+   *     shorter timeout.
+   */
+  PropertyRunner(long seed, Generator<T> generator, Property<T> property,
+      Property<T> timeoutShrinkProperty) {
+    this.seed = seed;
+    this.generator = generator;
+    this.property = property;
+    this.timeoutShrinkProperty = timeoutShrinkProperty;
+  }
+
+  /**
+   * Runs numCases cases on numThreads threads, stopping early once any case fails.
+   */
+  void run(final int numCases, int numThreads) {
+    final AtomicInteger nextCase = new AtomicInteger(0);
+    final AtomicInteger casesRun = new AtomicInteger(0);
+    ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, numThreads));
+    for (int i = 0; i < numThreads; ++i) {
+      executor.execute(new Runnable() {
+        @Override
+        public void run() {
+          int caseNumber;
+          while ((caseNumber = nextCase.getAndIncrement()) < numCases && failure.get() == null) {
+            Failure caseFailure = runCase(caseNumber);
+            if (caseFailure != null) {
+              failure.compareAndSet(null, caseFailure);
+            } else {
+              casesRun.incrementAndGet();
+            }
+          }
+        }
+      });
+    }
+    executor.shutdown();
+    try {
+      executor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+    } catch (InterruptedException e) {
+      executor.shutdownNow();
+      throw new RuntimeException(e);
+    }
+    Failure original = failure.get();
+    if (original != null) {
+      throw failureException(original, numCases);
+    } else if (casesRun.get() != numCases) {
+      throw new RuntimeException("Only " + casesRun.get() + " of " + numCases
+          + " property cases ran (seed " + seed + ")");
+    }
+  }
+
+  /**
+   * Generates and checks one input.
+   *
+   * @return The failure, or null if the property held.
+   */
+  private Failure runCase(int caseNumber) {
+    T value;
+    try {
+      value = generator.generate(randomForCase(caseNumber), caseNumber % (MAX_SIZE + 1));
+    } catch (Throwable t) {
+      return new Failure(caseNumber, null, t, true);
+    }
+    Throwable error = check(value, property);
+    return error == null ? null : new Failure(caseNumber, value, error, false);
+  }
+
+  private RuntimeException failureException(Failure original, int numCases) {
+    if (original.generatorFailed) {
+      return new RuntimeException("Generator failed on case " + original.caseNumber + " of "
+          + numCases + " (seed " + seed + ")", original.error);
+    }
+    Failure minimal = shrink(original);
+    return new RuntimeException("Property failed on case " + original.caseNumber + " of "
+        + numCases + " (seed " + seed + "). Minimal input: " + minimal.value
+        + ", original input: " + original.value, minimal.error);
+  }
+
+  private Random randomForCase(int caseNumber) {
+    return new Random(seed ^ (caseNumber * 0x9E3779B97F4A7C15L));
+  }
+
+  private Throwable check(T value, Property<T> property) {
+    try {
+      property.check(value);
+      return null;
+    } catch (Throwable t) {
+      return t;
+    }
+  }
+
+  /**
+   * Repeatedly replaces the failing input with the first simpler variant which still fails,
+   * until no variant fails or the step limit is reached.
+   */
+  private Failure shrink(Failure failure) {
+    boolean timedOut = failure.error instanceof CaseTimedOutException;
+    Property<T> shrinkProperty = timedOut ? timeoutShrinkProperty : property;
+    int steps = 0;
+    boolean shrunk = true;
+    while (shrunk && steps < MAX_SHRINK_STEPS) {
+      shrunk = false;
+      for (T candidate : generator.shrink(failure.value)) {
+        if (++steps > MAX_SHRINK_STEPS) {
+          break;
+        }
+        Throwable error = check(candidate, shrinkProperty);
+        if (error != null && (timedOut || !(error instanceof CaseTimedOutException))) {
+          failure = new Failure(failure.caseNumber, candidate, error, false);
+          shrunk = true;
+          break;
+        }
+      }
+    }
+    return failure;
+  }
+}
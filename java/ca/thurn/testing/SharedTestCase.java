@@ -1,10 +1,19 @@
 package ca.thurn.testing;
 
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
 import java.util.Iterator;
 import java.util.Map;
+import java.util.Set;
 import java.util.TimerTask;
+import java.util.concurrent.Callable;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReference;
 
 import junit.framework.Assert;
 import junit.framework.TestCase;
@@ -16,6 +25,12 @@ public abstract class SharedTestCase extends TestCase {
   final AtomicBoolean finished = new AtomicBoolean(false);
   final AtomicInteger numFinishes = new AtomicInteger(0);
   final AtomicBoolean didSetUpTestCase = new AtomicBoolean(false);
+  long setUpStartNanos = 0;
+  long setUpEndNanos = 0;
+  long asyncWaitNanos = 0;
+
+  /** Marks the lines written when timing reports are enabled. See ModeComparisonReport. */
+  static final String TIMING_MARKER = "[SharedTestCase timing]";
 
   public static enum TestMode {
     JAVA,
@@ -83,12 +98,220 @@ public abstract class SharedTestCase extends TestCase {
     }
   }
   
+  public static class LongReference {
+    private AtomicLong value;
+    
+    public LongReference(long value) {
+      this.value = new AtomicLong(value);
+    }
+    
+    public void set(long newValue) {
+      value.set(newValue);
+    }
+    
+    public long get() {
+      return value.get();
+    }
+    
+    public long getAndSet(long newValue) {
+      return value.getAndSet(newValue);
+    }
+    
+    public long getAndIncrement() {
+      return value.getAndIncrement();
+    }
+    
+    public long getAndAdd(long delta) {
+      return value.getAndAdd(delta);
+    }
+  }
+  
+  /**
+   * A counter for events reported from many threads at once. Increments are spread across
+   * several cells, each on its own cache line, so concurrent callers rarely contend with each
+   * other. Reads sum the cells, so they are slower than increments.
+   */
+  public static class CounterReference {
+    // Cells are this many longs apart, so that no two share a cache line.
+    private static final int CELL_STRIDE = 16;
+    private final AtomicLongArray cells;
+    private final int mask;
+    
+    public CounterReference(long value) {
+      int numCells = 1;
+      while (numCells < Runtime.getRuntime().availableProcessors() * 2) {
+        numCells <<= 1;
+      }
+      cells = new AtomicLongArray(numCells * CELL_STRIDE);
+      mask = numCells - 1;
+      cells.set(0, value);
+    }
+    
+    public void increment() {
+      add(1);
+    }
+    
+    public void add(long delta) {
+      long threadHash = Thread.currentThread().getId() * 0x9E3779B97F4A7C15L;
+      cells.getAndAdd(((int) (threadHash >>> 32) & mask) * CELL_STRIDE, delta);
+    }
+    
+    public long get() {
+      long sum = 0;
+      for (int i = 0; i < cells.length(); i += CELL_STRIDE) {
+        sum += cells.get(i);
+      }
+      return sum;
+    }
+  }
+  
+  /**
+   * A histogram of latencies (or any other non-negative values) recorded from many threads at
+   * once. Recording never allocates or locks. Values are kept in logarithmic buckets with 32
+   * linear sub-buckets each, so reported percentiles are within about 3% of the true value.
+   */
+  public static class LatencyHistogramReference {
+    private static final int SUB_BUCKET_BITS = 5;
+    private static final int NUM_BUCKETS = (64 - SUB_BUCKET_BITS) << SUB_BUCKET_BITS;
+    private final AtomicLongArray counts = new AtomicLongArray(NUM_BUCKETS);
+    private final AtomicLong max = new AtomicLong(0);
+    
+    public void record(long value) {
+      value = Math.max(0, value);
+      counts.incrementAndGet(bucketIndex(value));
+      long currentMax = max.get();
+      while (value > currentMax && !max.compareAndSet(currentMax, value)) {
+        currentMax = max.get();
+      }
+    }
+    
+    public long getCount() {
+      long sum = 0;
+      for (int i = 0; i < NUM_BUCKETS; ++i) {
+        sum += counts.get(i);
+      }
+      return sum;
+    }
+    
+    public long getMax() {
+      return max.get();
+    }
+    
+    /**
+     * @param percentile A percentile between 0 and 100.
+     * @return A value which at least the given percentage of recorded values are less than or
+     *     equal to, or 0 if nothing has been recorded.
+     */
+    public long getPercentile(double percentile) {
+      long target = (long) Math.ceil(percentile / 100.0 * getCount());
+      long seen = 0;
+      for (int i = 0; i < NUM_BUCKETS; ++i) {
+        seen += counts.get(i);
+        if (seen > 0 && seen >= target) {
+          return Math.min(highestValueInBucket(i), getMax());
+        }
+      }
+      return getMax();
+    }
+    
+    @Override
+    public String toString() {
+      return "count=" + getCount() + " p50=" + getPercentile(50) + " p90=" + getPercentile(90)
+          + " p99=" + getPercentile(99) + " max=" + getMax();
+    }
+    
+    static int bucketIndex(long value) {
+      int shift = Math.max(0, 63 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS);
+      return (shift << SUB_BUCKET_BITS) + (int) (value >>> shift);
+    }
+    
+    static long highestValueInBucket(int index) {
+      int shift = Math.max(0, (index >> SUB_BUCKET_BITS) - 1);
+      long subBucket = index - (shift << SUB_BUCKET_BITS);
+      return ((subBucket + 1) << shift) - 1;
+    }
+  }
+  
+  /**
+   * One of possibly several async blocks outstanding in the same test. See
+   * beginAsyncTestBlock(String, int).
+   */
+  public static class AsyncBlock {
+    private final String name;
+    private final AtomicInteger numFinishes;
+    private final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+    
+    AsyncBlock(String name, int numFinishesExpected) {
+      this.name = name;
+      this.numFinishes = new AtomicInteger(numFinishesExpected);
+    }
+    
+    public String getName() {
+      return name;
+    }
+    
+    public void finished() {
+      if (numFinishes.decrementAndGet() == 0) {
+        synchronized (this) {
+          notifyAll();
+        }
+      }
+    }
+    
+    /**
+     * Marks the block as failed, so that whatever is waiting on it stops waiting and fails with
+     * the given error rather than timing out. Only the first failure is kept.
+     */
+    public void fail(Throwable error) {
+      if (failure.compareAndSet(null, error)) {
+        synchronized (this) {
+          notifyAll();
+        }
+      }
+    }
+    
+    public Throwable getFailure() {
+      return failure.get();
+    }
+    
+    /**
+     * Blocks the calling thread until the block finishes or fails, or the timeout passes.
+     *
+     * @return True if the block finished or failed.
+     */
+    synchronized boolean await(long timeoutMillis) {
+      long deadline = System.currentTimeMillis() + timeoutMillis;
+      try {
+        while (!isFinished() && failure.get() == null) {
+          long remaining = deadline - System.currentTimeMillis();
+          if (remaining <= 0) {
+            return false;
+          }
+          wait(remaining);
+        }
+      } catch (InterruptedException e) {
+        throw new RuntimeException(e);
+      }
+      return true;
+    }
+    
+    public boolean isFinished() {
+      return numFinishes.get() <= 0;
+    }
+    
+    @Override
+    public String toString() {
+      return name;
+    }
+  }
+  
   public String getJavascriptModuleName() {
     throw new RuntimeException("No Javascript module name supplied");
   }
   
   @Override
   public final void setUp() {
+    setUpStartNanos = System.nanoTime();
     beginAsyncTestBlock();
     final Runnable runFinished = new OneTimeRunnable(new Runnable() {
       @Override
@@ -107,13 +330,36 @@ public abstract class SharedTestCase extends TestCase {
       sharedSetUp(runFinished);
     }
     endAsyncTestBlock();
+    setUpEndNanos = System.nanoTime();
+    asyncWaitNanos = 0;
   }
   
   @Override
   public final void tearDown() {
+    if (isTimingReportEnabled()) {
+      long bodyNanos = System.nanoTime() - setUpEndNanos - asyncWaitNanos;
+      System.out.println(TIMING_MARKER + "\t" + getTestMode() + "\t" + getClass().getName() + "."
+          + getName() + "\t" + toMillis(setUpEndNanos - setUpStartNanos) + "\t"
+          + toMillis(bodyNanos) + "\t" + toMillis(asyncWaitNanos));
+    }
     sharedTearDown();
   }
   
+  /**
+   * If true, a line with the time taken by setUp, the test body and waiting on async blocks is
+   * written to standard output after each test. The body time doesn't include the async wait.
+   * Feed the output from each TestMode to
+   * ModeComparisonReport to compare them. Defaults to the "sharedtestcase.timings" system
+   * property.
+   */
+  public boolean isTimingReportEnabled() {
+    return Boolean.getBoolean("sharedtestcase.timings");
+  }
+  
+  private static String toMillis(long nanos) {
+    return String.valueOf(Math.round(nanos / 1e3) / 1000.0);
+  }
+  
   public void sharedSetUpTestCase(Runnable done) {
     done.run();
   }
@@ -140,10 +386,101 @@ public abstract class SharedTestCase extends TestCase {
   }
 
   public void endAsyncTestBlock() {
-    Awaitility.await("Waiting for call to finished()").untilTrue(finished);
+    awaitCondition("Async block", "Waiting for call to finished()", new Callable<Boolean>() {
+      @Override
+      public Boolean call() {
+        return finished.get();
+      }
+    });
     finished.set(false);
   }
 
+  /**
+   * Starts a named async block which can be outstanding at the same time as other blocks. Call
+   * finished() on the returned block, rather than on the test, when each callback completes.
+   */
+  public AsyncBlock beginAsyncTestBlock(String name, int numFinishesExpected) {
+    return new AsyncBlock(name, numFinishesExpected);
+  }
+
+  /**
+   * Waits for all of the given blocks to finish, so that their latencies overlap instead of
+   * adding up. Fails with a timeout just like endAsyncTestBlock(), or with the error passed to
+   * fail() as soon as any of the blocks fails.
+   */
+  public void awaitAll(final AsyncBlock... blocks) {
+    String names = Arrays.toString(blocks);
+    awaitCondition("Async blocks " + names, "Waiting for async blocks " + names,
+        new Callable<Boolean>() {
+          @Override
+          public Boolean call() {
+            boolean allFinished = true;
+            for (AsyncBlock block : blocks) {
+              if (block.getFailure() != null) {
+                return true;
+              }
+              allFinished &= block.isFinished();
+            }
+            return allFinished;
+          }
+        });
+    for (AsyncBlock block : blocks) {
+      if (block.getFailure() != null) {
+        rethrow(block.getFailure());
+      }
+    }
+  }
+
+  private static void rethrow(Throwable error) {
+    if (error instanceof RuntimeException) {
+      throw (RuntimeException) error;
+    } else if (error instanceof Error) {
+      throw (Error) error;
+    }
+    throw new RuntimeException(error);
+  }
+
+  private void awaitCondition(String description, String alias, Callable<Boolean> condition) {
+    StallProfiler profiler = StallProfiler.start(description + " in " + getName(),
+        getStallThresholdMillis(), getStallSampleIntervalMillis());
+    long startNanos = System.nanoTime();
+    try {
+      Awaitility.await(alias).until(condition);
+    } catch (Exception e) {
+      // Awaitility rethrows its checked TimeoutException without declaring it, so it can only be
+      // caught as Exception. The stall report goes in the failure itself.
+      String report = profiler.stop();
+      if (report == null && e instanceof RuntimeException) {
+        throw (RuntimeException) e;
+      }
+      throw new RuntimeException(report == null ? e.getMessage() : e.getMessage() + "\n" + report,
+          e);
+    } catch (Error e) {
+      profiler.stop();
+      throw e;
+    } finally {
+      asyncWaitNanos += System.nanoTime() - startNanos;
+    }
+    String report = profiler.stop();
+    if (report != null) {
+      System.err.print(report);
+    }
+  }
+
+  /**
+   * If endAsyncTestBlock() waits longer than this, the stacks of all threads are sampled until
+   * the block finishes or times out. A summary of where they spent their time is then added to
+   * the message of the timeout failure, or written to standard error if the block did finish.
+   * Return a negative value to disable sampling.
+   */
+  public long getStallThresholdMillis() {
+    return 2000;
+  }
+
+  public long getStallSampleIntervalMillis() {
+    return 20;
+  }
+
   public TestMode getTestMode() {
     return TestMode.JAVA;
   }
@@ -172,12 +509,98 @@ public abstract class SharedTestCase extends TestCase {
     return new java.util.Random().nextInt();
   }
 
+  public <T> void checkProperty(Generator<T> generator, Property<T> property) {
+    checkProperty(100, generator, property);
+  }
+
+  public <T> void checkProperty(int numCases, Generator<T> generator, Property<T> property) {
+    checkProperty(numCases, randomInteger(), generator, property);
+  }
+
+  /**
+   * Checks that a property holds for numCases inputs from the given generator. Cases run in
+   * parallel on one thread per processor, so the property must be safe to check concurrently. If
+   * a case fails, its input is shrunk to a minimal failing one, and the failure reports both
+   * inputs along with the seed, which can be passed back in to reproduce it.
+   */
+  public <T> void checkProperty(int numCases, long seed, Generator<T> generator,
+      Property<T> property) {
+    new PropertyRunner<T>(seed, generator, property).run(numCases,
+        Runtime.getRuntime().availableProcessors());
+  }
+
+  public <T> void checkAsyncProperty(int numCases, Generator<T> generator,
+      AsyncProperty<T> property) {
+    checkAsyncProperty(numCases, randomInteger(), generator, property);
+  }
+
+  /**
+   * Like checkProperty(), but each case is only complete once it calls finished() on the block
+   * it is given, and fails as soon as it calls fail() on it or once it times out. More cases are
+   * run at once than there are processors, since most of them are expected to be waiting.
+   */
+  public <T> void checkAsyncProperty(int numCases, long seed, Generator<T> generator,
+      AsyncProperty<T> property) {
+    new PropertyRunner<T>(seed, generator,
+        asyncCheck(property, getAsyncPropertyTimeoutMillis()),
+        asyncCheck(property, getAsyncPropertyShrinkTimeoutMillis()))
+        .run(numCases, 4 * Runtime.getRuntime().availableProcessors());
+  }
+
+  /**
+   * How long each case of checkAsyncProperty() may wait for finished() before it fails.
+   */
+  public long getAsyncPropertyTimeoutMillis() {
+    return 10000;
+  }
+
+  /**
+   * How long each input tried while shrinking a case of checkAsyncProperty() which timed out may
+   * wait for finished(). This is short, since each such input which still fails does so by timing
+   * out. Inputs tried while shrinking a case which failed some other way get the full timeout,
+   * and don't count as failing if they time out.
+   */
+  public long getAsyncPropertyShrinkTimeoutMillis() {
+    return 500;
+  }
+
+  private <T> Property<T> asyncCheck(final AsyncProperty<T> property, final long timeoutMillis) {
+    return new Property<T>() {
+      @Override
+      public void check(T value) {
+        AsyncBlock block = new AsyncBlock("Property case", 1);
+        property.check(value, block);
+        boolean done = block.await(timeoutMillis);
+        if (block.getFailure() != null) {
+          rethrow(block.getFailure());
+        } else if (!done) {
+          throw new PropertyRunner.CaseTimedOutException(
+              "Timed out waiting for call to finished() with input " + value);
+        }
+      }
+    };
+  }
+
   public void assertDeepEquals(Object o1, Object o2) {
     assertDeepEquals("(no message)", o1, o2);
   }
   
+  /**
+   * Compares Sets without regard to order, other Iterables in iteration order, Maps by key,
+   * and arrays element by element, recursing into the contents of each. A Set never equals
+   * anything but another Set.
+   */
   public void assertDeepEquals(String msg, Object o1, Object o2) {
-    if (o1 instanceof Iterable && o2 instanceof Iterable) {
+    if (DeepEquality.equal(o1, o2)) {
+      return;
+    }
+    // The values differ, so walk them again to report the first difference.
+    if (o1 instanceof Set && o2 instanceof Set) {
+      assertEquals("Set sizes differ", ((Set<?>) o1).size(), ((Set<?>) o2).size());
+      assertMultisetEquals(msg, (Set<?>) o1, (Set<?>) o2);
+    } else if (o1 instanceof Set || o2 instanceof Set) {
+      fail(msg + ": a Set can only equal another Set");
+    } else if (o1 instanceof Iterable && o2 instanceof Iterable) {
       @SuppressWarnings("unchecked")
       Iterator<Object> ite1 = ((Iterable<Object>) o1).iterator();
       @SuppressWarnings("unchecked")
@@ -193,12 +616,70 @@ public abstract class SharedTestCase extends TestCase {
       Map<Object, Object> map2 = (Map<Object, Object>) o2;
       assertEquals("Map sizes differ", map1.size(), map2.size());
       for (Map.Entry<Object, Object> entry : map1.entrySet()) {
-        assertTrue(map2.containsKey(entry.getKey()));
-        assertDeepEquals(msg, entry.getValue(), map2.get(entry.getKey()));
+        Object value2 = map2.get(entry.getKey());
+        if (value2 == null && !map2.containsKey(entry.getKey())) {
+          fail(msg + ": missing map key " + entry.getKey());
+        }
+        assertDeepEquals(msg, entry.getValue(), value2);
+      }
+    } else if (o1 instanceof Object[] && o2 instanceof Object[]) {
+      Object[] array1 = (Object[]) o1;
+      Object[] array2 = (Object[]) o2;
+      assertEquals("Array lengths differ", array1.length, array2.length);
+      for (int i = 0; i < array1.length; ++i) {
+        assertDeepEquals(msg, array1[i], array2[i]);
+      }
+    } else if (Mismatch.isPrimitiveArray(o1) && Mismatch.isPrimitiveArray(o2)) {
+      assertEquals("Array types differ", o1.getClass(), o2.getClass());
+      int index = Mismatch.arrays(o1, o2);
+      if (index != -1) {
+        fail(msg + ": arrays differ at index " + index);
+      }
+    } else if (o1 instanceof ByteBuffer && o2 instanceof ByteBuffer) {
+      int index = Mismatch.of((ByteBuffer) o1, (ByteBuffer) o2);
+      if (index != -1) {
+        fail(msg + ": buffers differ at index " + index);
       }
     } else {
       assertEquals(msg, o1, o2);
     }
+    fail(msg + ": " + o1 + " does not equal " + o2);
+  }
+
+  public void assertMultisetEquals(Iterable<?> c1, Iterable<?> c2) {
+    assertMultisetEquals("(no message)", c1, c2);
+  }
+
+  /**
+   * Asserts that two collections contain deeply equal elements the same number of times, in any
+   * order. Elements are matched up by hashing, so this runs in linear time.
+   */
+  public void assertMultisetEquals(String msg, Iterable<?> c1, Iterable<?> c2) {
+    Object unmatched = DeepEquality.unmatched(c1, c2);
+    if (unmatched != DeepEquality.NONE) {
+      fail(msg + ": no matching element for " + unmatched);
+    }
+  }
+
+  public void assertFileContentsEqual(File expected, File actual) {
+    assertFileContentsEqual("(no message)", expected, actual);
+  }
+
+  /**
+   * Compares two files a block at a time through direct buffers rather than reading them onto
+   * the heap, so it is suitable for very large files. On failure, reports the first byte offset
+   * at which they differ.
+   */
+  public void assertFileContentsEqual(String msg, File expected, File actual) {
+    long offset;
+    try {
+      offset = Mismatch.of(expected, actual);
+    } catch (IOException e) {
+      throw new RuntimeException(e);
+    }
+    if (offset != -1) {
+      fail(msg + ": files differ at byte offset " + offset);
+    }
   }
   
   
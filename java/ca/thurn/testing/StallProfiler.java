@@ -0,0 +1,122 @@
+package ca.thurn.testing;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Timer;
+import java.util.TimerTask;
+
+/**
+ * Samples the stacks of every thread while an async block is taking longer than expected, and
+ * summarizes them in collapsed-stack form: one line per distinct stack, frames listed from the
+ * root to the leaf and separated by semicolons, followed by the number of samples which saw it.
+ */
+final class StallProfiler {
+
+  private static final int MAX_REPORTED_STACKS = 20;
+  private static final Timer timer = new Timer("SharedTestCase stall profiler", true);
+
+  private final String description;
+  private final Thread waitingThread;
+  private final long startMillis;
+  private final Map<String, Integer> stackCounts = new HashMap<String, Integer>();
+  private int numSamples = 0;
+  private TimerTask task;
+
+  private StallProfiler(String description) {
+    this.description = description;
+    this.waitingThread = Thread.currentThread();
+    this.startMillis = System.currentTimeMillis();
+  }
+
+  /**
+   * Starts sampling every intervalMillis once thresholdMillis have passed. A negative threshold
+   * disables sampling.
+   */
+  static StallProfiler start(String description, long thresholdMillis, long intervalMillis) {
+    final StallProfiler profiler = new StallProfiler(description);
+    if (thresholdMillis >= 0) {
+      profiler.task = new TimerTask() {
+        @Override
+        public void run() {
+          profiler.sample();
+        }
+      };
+      timer.scheduleAtFixedRate(profiler.task, thresholdMillis, Math.max(1, intervalMillis));
+    }
+    return profiler;
+  }
+
+  /**
+   * Stops sampling.
+   *
+   * @return The collapsed-stack summary, or null if no samples were taken.
+   */
+  synchronized String stop() {
+    if (task != null) {
+      task.cancel();
+    }
+    if (numSamples == 0) {
+      return null;
+    }
+    List<Map.Entry<String, Integer>> stacks =
+        new ArrayList<Map.Entry<String, Integer>>(stackCounts.entrySet());
+    Collections.sort(stacks, new Comparator<Map.Entry<String, Integer>>() {
+      @Override
+      public int compare(Map.Entry<String, Integer> e1, Map.Entry<String, Integer> e2) {
+        return e2.getValue().compareTo(e1.getValue());
+      }
+    });
+    StringBuilder report = new StringBuilder();
+    report.append(description).append(" stalled for ")
+        .append(System.currentTimeMillis() - startMillis).append("ms. ").append(numSamples)
+        .append(" stack samples, most frequent first:\n");
+    for (int i = 0; i < stacks.size() && i < MAX_REPORTED_STACKS; ++i) {
+      report.append(stacks.get(i).getKey()).append(' ').append(stacks.get(i).getValue())
+          .append('\n');
+    }
+    if (stacks.size() > MAX_REPORTED_STACKS) {
+      report.append("(").append(stacks.size() - MAX_REPORTED_STACKS)
+          .append(" less frequent stacks omitted)\n");
+    }
+    return report.toString();
+  }
+
+  private synchronized void sample() {
+    numSamples++;
+    for (Map.Entry<Thread, StackTraceElement[]> entry : Thread.getAllStackTraces().entrySet()) {
+      Thread thread = entry.getKey();
+      StackTraceElement[] frames = entry.getValue();
+      if (thread == Thread.currentThread() || thread == waitingThread || frames.length == 0
+          || isSystemThread(thread) || isAwaitilityThread(frames)) {
+        continue;
+      }
+      StringBuilder stack = new StringBuilder();
+      for (int i = frames.length - 1; i >= 0; --i) {
+        stack.append(frames[i].getClassName()).append('.').append(frames[i].getMethodName())
+            .append(';');
+      }
+      stack.append('[').append(thread.getState()).append(']');
+      String key = stack.toString();
+      Integer count = stackCounts.get(key);
+      stackCounts.put(key, count == null ? 1 : count + 1);
+    }
+  }
+
+  private static boolean isSystemThread(Thread thread) {
+    ThreadGroup group = thread.getThreadGroup();
+    return group != null && "system".equals(group.getName());
+  }
+
+  private static boolean isAwaitilityThread(StackTraceElement[] frames) {
+    for (StackTraceElement frame : frames) {
+      if (frame.getClassName().startsWith("com.jayway.awaitility.")) {
+        return true;
+      }
+    }
+    return false;
+  }
+}
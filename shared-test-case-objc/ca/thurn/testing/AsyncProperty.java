@@ -0,0 +1,16 @@
+package ca.thurn.testing;
+
+import ca.thurn.testing.SharedTestCase.AsyncBlock;
+
+/**
+ * A property whose check completes asynchronously. See SharedTestCase.checkAsyncProperty().
+ */
+public interface AsyncProperty<T> {
+
+  /**
+   * Starts checking the property for one input. Once the check has passed, call finished() on
+   * the given block. If it fails in a callback, pass the error to fail() on the block instead,
+   * so that the case fails straight away rather than when it times out.
+   */
+  void check(T value, AsyncBlock block);
+}
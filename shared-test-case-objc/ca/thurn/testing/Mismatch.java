@@ -0,0 +1,148 @@
+package ca.thurn.testing;
+
+import java.util.Arrays;
+
+/**
+ * Locates the first position at which two primitive arrays differ. Every method returns -1 if the
+ * arrays are equal, and the length of the shorter array if one is a prefix of the other. The bulk
+ * comparison is done first, so the element-by-element scan only runs on failure.
+ */
+final class Mismatch {
+
+  private Mismatch() {
+  }
+
+  static boolean isPrimitiveArray(Object o) {
+    return o instanceof int[] || o instanceof long[] || o instanceof double[]
+        || o instanceof float[] || o instanceof byte[] || o instanceof short[]
+        || o instanceof char[] || o instanceof boolean[];
+  }
+
+  /**
+   * Both arguments must be primitive arrays of the same component type.
+   */
+  static int arrays(Object a1, Object a2) {
+    if (a1 instanceof int[]) {
+      return of((int[]) a1, (int[]) a2);
+    } else if (a1 instanceof long[]) {
+      return of((long[]) a1, (long[]) a2);
+    } else if (a1 instanceof double[]) {
+      return of((double[]) a1, (double[]) a2);
+    } else if (a1 instanceof float[]) {
+      return of((float[]) a1, (float[]) a2);
+    } else if (a1 instanceof byte[]) {
+      return of((byte[]) a1, (byte[]) a2);
+    } else if (a1 instanceof short[]) {
+      return of((short[]) a1, (short[]) a2);
+    } else if (a1 instanceof char[]) {
+      return of((char[]) a1, (char[]) a2);
+    } else if (a1 instanceof boolean[]) {
+      return of((boolean[]) a1, (boolean[]) a2);
+    }
+    throw new IllegalArgumentException("Not a primitive array: " + a1);
+  }
+
+  static int of(int[] a1, int[] a2) {
+    if (Arrays.equals(a1, a2)) {
+      return -1;
+    }
+    int length = Math.min(a1.length, a2.length);
+    for (int i = 0; i < length; ++i) {
+      if (a1[i] != a2[i]) {
+        return i;
+      }
+    }
+    return length;
+  }
+
+  static int of(long[] a1, long[] a2) {
+    if (Arrays.equals(a1, a2)) {
+      return -1;
+    }
+    int length = Math.min(a1.length, a2.length);
+    for (int i = 0; i < length; ++i) {
+      if (a1[i] != a2[i]) {
+        return i;
+      }
+    }
+    return length;
+  }
+
+  static int of(byte[] a1, byte[] a2) {
+    if (Arrays.equals(a1, a2)) {
+      return -1;
+    }
+    int length = Math.min(a1.length, a2.length);
+    for (int i = 0; i < length; ++i) {
+      if (a1[i] != a2[i]) {
+        return i;
+      }
+    }
+    return length;
+  }
+
+  static int of(short[] a1, short[] a2) {
+    if (Arrays.equals(a1, a2)) {
+      return -1;
+    }
+    int length = Math.min(a1.length, a2.length);
+    for (int i = 0; i < length; ++i) {
+      if (a1[i] != a2[i]) {
+        return i;
+      }
+    }
+    return length;
+  }
+
+  static int of(char[] a1, char[] a2) {
+    if (Arrays.equals(a1, a2)) {
+      return -1;
+    }
+    int length = Math.min(a1.length, a2.length);
+    for (int i = 0; i < length; ++i) {
+      if (a1[i] != a2[i]) {
+        return i;
+      }
+    }
+    return length;
+  }
+
+  static int of(boolean[] a1, boolean[] a2) {
+    if (Arrays.equals(a1, a2)) {
+      return -1;
+    }
+    int length = Math.min(a1.length, a2.length);
+    for (int i = 0; i < length; ++i) {
+      if (a1[i] != a2[i]) {
+        return i;
+      }
+    }
+    return length;
+  }
+
+  static int of(double[] a1, double[] a2) {
+    if (Arrays.equals(a1, a2)) {
+      return -1;
+    }
+    int length = Math.min(a1.length, a2.length);
+    for (int i = 0; i < length; ++i) {
+      if (Double.compare(a1[i], a2[i]) != 0) {
+        return i;
+      }
+    }
+    return length;
+  }
+
+  static int of(float[] a1, float[] a2) {
+    if (Arrays.equals(a1, a2)) {
+      return -1;
+    }
+    int length = Math.min(a1.length, a2.length);
+    for (int i = 0; i < length; ++i) {
+      if (Float.compare(a1[i], a2[i]) != 0) {
+        return i;
+      }
+    }
+    return length;
+  }
+}
@@ -3,6 +3,7 @@ package ca.thurn.testing;
 public class Monitor {
   final int expectedSignals;
   int signalCount;
+  boolean aborted = false;
   
   Monitor(int expectedSignals) {
     this.expectedSignals = expectedSignals;
@@ -26,10 +27,38 @@ public class Monitor {
     return NO;
   ]-*/;
 
+  /**
+   * Waits until the given time, in milliseconds since the epoch, for calls to the signal() method.
+   * Unlike waitForSignals(), this leaves the signal count alone, so it can be waited on again,
+   * and it stops early if abort() is called.
+   * @return True if a timeout occured.
+   */
+  boolean waitForSignalsUntil(long deadlineMillis) {
+    while (signalCount < expectedSignals && !aborted) {
+      runRunLoop();
+      if (System.currentTimeMillis() > deadlineMillis) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Runs the current run loop until it handles an input, or for at most 10 milliseconds.
+   */
+  static native void runRunLoop() /*-[
+    [[NSRunLoop currentRunLoop] runMode:NSDefaultRunLoopMode
+                             beforeDate:[NSDate dateWithTimeIntervalSinceNow: 0.01]];
+  ]-*/;
+
   void signal() {
     signalCount++;
   }
   
+  void abort() {
+    aborted = true;
+  }
+  
   void reset() {
     signalCount = 0;
   }